@@ -1,7 +1,23 @@
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Block {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // MessageDigest is not thread-safe, so every thread hashing blocks gets its own instance
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256"); // SHA-256 hashing algorithm
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    });
+
     public String hash;           // The hash of the current block
     public String previousHash;   // The hash of the previous block
     public String data;           // The data stored in the block
@@ -23,20 +39,33 @@ public class Block {
         this.mediaSize = mediaSize; // Set media size
     }
 
+    // Constructor for blocks restored from storage; keeps the stored hash instead of recomputing it
+    Block(String hash, String previousHash, String data, long timestamp, int nonce, String mediaFilePath, String mediaType, long mediaSize) {
+        this.hash = hash;
+        this.previousHash = previousHash;
+        this.data = data;
+        this.timestamp = timestamp;
+        this.nonce = nonce;
+        this.mediaFilePath = mediaFilePath;
+        this.mediaType = mediaType;
+        this.mediaSize = mediaSize;
+    }
+
     // Method to calculate the hash of the block
     public String calculateHash() {
+        return calculateHash(nonce);
+    }
+
+    // Hash of the block as if it had the given nonce
+    private String calculateHash(int nonce) {
         String input = previousHash + Long.toString(timestamp) + Integer.toString(nonce) + data + mediaFilePath + mediaType + mediaSize;
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256"); // SHA-256 hashing algorithm
-            byte[] hashBytes = digest.digest(input.getBytes());
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                hexString.append(String.format("%02x", b)); // Convert byte to hex
-            }
-            return hexString.toString(); // Return the hash as a hex string
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        byte[] hashBytes = SHA256.get().digest(input.getBytes());
+        char[] hexChars = new char[hashBytes.length * 2];
+        for (int i = 0; i < hashBytes.length; i++) {
+            hexChars[i * 2] = HEX_DIGITS[(hashBytes[i] >> 4) & 0xf]; // Convert byte to hex
+            hexChars[i * 2 + 1] = HEX_DIGITS[hashBytes[i] & 0xf];
         }
+        return new String(hexChars); // Return the hash as a hex string
     }
 
     // Method to mine the block by finding a hash that starts with a specific number of zeros (difficulty)
@@ -49,11 +78,80 @@ public class Block {
         System.out.println("Block mined: " + hash); // Log mined block hash
     }
 
+    // Mine the block with several workers, each trying every workers-th nonce
+    public void mineBlock(int difficulty, ExecutorService miners, int workers) {
+        String target = new String(new char[difficulty]).replace('\0', '0'); // Create target string
+        if (workers <= 1 || hash.startsWith(target)) {
+            mineBlock(difficulty);
+            return;
+        }
+        AtomicBoolean found = new AtomicBoolean(false);
+        int[] winningNonce = new int[1];
+        String[] winningHash = new String[1];
+        List<Future<?>> results = new ArrayList<>(workers);
+        for (int worker = 0; worker < workers; worker++) {
+            int firstNonce = nonce + 1 + worker;
+            results.add(miners.submit(() -> {
+                for (int candidate = firstNonce; !found.get(); candidate += workers) {
+                    String candidateHash = calculateHash(candidate);
+                    if (candidateHash.startsWith(target) && found.compareAndSet(false, true)) {
+                        winningNonce[0] = candidate;
+                        winningHash[0] = candidateHash;
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> result : results) {
+                result.get(); // Also makes the winner's writes visible to this thread
+            }
+        } catch (InterruptedException e) {
+            found.set(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Mining interrupted", e);
+        } catch (ExecutionException e) {
+            found.set(true);
+            throw new IllegalStateException("Mining failed", e.getCause());
+        }
+        nonce = winningNonce[0];
+        hash = winningHash[0];
+        System.out.println("Block mined: " + hash); // Log mined block hash
+    }
+
     // Method to get the data of the block
     public String getData() {
         return data; // Return the data stored in the block
     }
 
+    // A pruned block only keeps its header; the body lives in a cold segment file
+    public boolean isPruned() {
+        return data == null;
+    }
+
+    // Copy of this block without its data and media path
+    public Block toHeader() {
+        return new Block(hash, previousHash, null, timestamp, nonce, null, mediaType, mediaSize);
+    }
+
+    // Convert block header details to a string representation; previousHash is left out, it is the hash of the block before
+    public String toHeaderString() {
+        return timestamp + ";" + nonce + ";" + hash + ";" + mediaType + ";" + mediaSize;
+    }
+
+    // Create a pruned Block object from its header string representation and the hash of the block before it
+    public static Block fromHeaderString(String header, String previousHash) {
+        try {
+            String[] parts = header.split(";");
+            if (parts.length != 5) {
+                throw new IllegalArgumentException("Invalid block header format.");
+            }
+            return new Block(parts[2], previousHash, null, Long.parseLong(parts[0]), Integer.parseInt(parts[1]), null, parts[3], Long.parseLong(parts[4]));
+        } catch (Exception e) {
+            System.err.println("Error parsing block header: " + e.getMessage());
+            return null;
+        }
+    }
+
     // Convert block details to a string representation
     @Override
     public String toString() {
@@ -77,11 +175,8 @@ public class Block {
             String mediaType = parts[6];
             long mediaSize = Long.parseLong(parts[7]);
     
-            Block block = new Block(blockData, previousHash, mediaFilePath, mediaType, mediaSize);
-            block.timestamp = timestamp; // Set the parsed timestamp
-            block.nonce = nonce; // Set the parsed nonce
-            block.hash = hash; // Set the parsed hash
-            return block; // Return the newly created block
+            // Keep the parsed hash instead of hashing the block again
+            return new Block(hash, previousHash, blockData, timestamp, nonce, mediaFilePath, mediaType, mediaSize);
         } catch (Exception e) {
             System.err.println("Error parsing block data: " + e.getMessage());
             return null;
@@ -0,0 +1,233 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bulk import of blocks in the chain file format: decode -> parallel hash verification -> ordered link check -> batched append.
+// The stages are connected by bounded queues, so a slow disk or verifier throttles the reader instead of filling the heap.
+public class BlockImporter {
+    private static final int BATCH_SIZE = 4096; // Blocks per verification task and per fsync
+    private static final int QUEUE_DEPTH = 8;   // Batches in flight between two stages
+    private static final Future<VerifiedBatch> END_OF_INPUT = CompletableFuture.completedFuture(new VerifiedBatch(Collections.emptyList(), null));
+    private static final List<Block> END_OF_BATCHES = Collections.emptyList();
+
+    private final BlockchainManager blockchainManager;
+    private final int verifierThreads;
+
+    // The blocks of a batch that decoded and verified, up to the first bad line, and why that line was rejected
+    private static class VerifiedBatch {
+        final List<Block> blocks;
+        final String error; // null if the whole batch verified
+
+        VerifiedBatch(List<Block> blocks, String error) {
+            this.blocks = blocks;
+            this.error = error;
+        }
+    }
+
+    public BlockImporter(BlockchainManager blockchainManager, int verifierThreads) {
+        this.blockchainManager = blockchainManager;
+        this.verifierThreads = Math.max(1, verifierThreads);
+    }
+
+    // Import blocks from a chain file, e.g. to migrate an archive
+    public long importFromFile(Path path) {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return importFrom(reader);
+        } catch (IOException e) {
+            System.err.println("Failed to open import file: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Import the chain streamed by a peer on its /blocks endpoint, e.g. to seed a new node
+    public long importFromPeer(String ip, int port) {
+        try (Socket socket = new Socket(ip, port)) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+            out.print("GET /blocks HTTP/1.1\r\n\r\n");
+            out.flush();
+
+            String statusLine = in.readLine();
+            if (statusLine == null || !statusLine.contains("200")) {
+                System.out.println("Peer " + ip + ":" + port + " did not serve its blocks: " + statusLine);
+                return 0;
+            }
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                // Skip the response headers
+            }
+            return importFrom(in);
+        } catch (IOException e) {
+            System.err.println("Failed to import blocks from " + ip + ":" + port + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Run the pipeline over one block per line; returns the number of blocks appended before the first error
+    public long importFrom(BufferedReader reader) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService verifiers = Executors.newFixedThreadPool(verifierThreads, runnable -> {
+            Thread thread = new Thread(runnable, "import-verifier-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        BlockingQueue<Future<VerifiedBatch>> verified = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        BlockingQueue<List<Block>> linked = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        AtomicLong appended = new AtomicLong();
+        long start = System.nanoTime();
+
+        // Stage 1: read lines and hand each batch to the verifiers, in order
+        Thread decoder = new Thread(() -> {
+            try {
+                List<String> lines = new ArrayList<>(BATCH_SIZE);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    lines.add(line);
+                    if (lines.size() == BATCH_SIZE) {
+                        List<String> batch = lines;
+                        verified.put(verifiers.submit(() -> decodeAndVerify(batch)));
+                        lines = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!lines.isEmpty()) {
+                    List<String> batch = lines;
+                    verified.put(verifiers.submit(() -> decodeAndVerify(batch)));
+                }
+                verified.put(END_OF_INPUT);
+            } catch (IOException e) {
+                CompletableFuture<VerifiedBatch> error = new CompletableFuture<>();
+                error.completeExceptionally(e);
+                try {
+                    verified.put(error);
+                } catch (InterruptedException ignored) {
+                    // The importer has already given up
+                }
+            } catch (InterruptedException e) {
+                // The importer has already given up
+            }
+        }, "import-decoder");
+
+        // Stage 4: append verified batches, one fsync each
+        Thread writer = new Thread(() -> {
+            try {
+                List<Block> batch;
+                while ((batch = linked.take()) != END_OF_BATCHES) {
+                    if (!blockchainManager.appendBlocks(batch)) {
+                        failed.set(true);
+                        return;
+                    }
+                    appended.addAndGet(batch.size());
+                }
+            } catch (InterruptedException e) {
+                failed.set(true);
+            }
+        }, "import-writer");
+
+        decoder.start();
+        writer.start();
+        try {
+            if (!linkBatches(verified, linked, writer)) {
+                failed.set(true);
+            }
+            while (writer.isAlive() && !linked.offer(END_OF_BATCHES, 100, TimeUnit.MILLISECONDS)) {
+                // Wait for the writer to make room
+            }
+            writer.join();
+            if (appended.get() > 0) {
+                blockchainManager.writeCheckpoint();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+        } finally {
+            decoder.interrupt();
+            verifiers.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Imported " + appended.get() + " blocks in " + String.format("%.2f", seconds) + "s ("
+                + String.format("%.0f", appended.get() / Math.max(seconds, 1e-9)) + " blocks/s)"
+                + (failed.get() ? ", stopped at the first error." : "."));
+        return appended.get();
+    }
+
+    // Stage 2: parse a batch and check that every block hashes to its stored hash; stops at the first bad line,
+    // keeping the blocks before it so a stream cut off mid-line still imports everything it delivered
+    private static VerifiedBatch decodeAndVerify(List<String> lines) {
+        List<Block> blocks = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            Block block = Block.fromString(line);
+            if (block == null) {
+                return new VerifiedBatch(blocks, "Invalid block format: " + line);
+            }
+            if (!block.hash.equals(block.calculateHash())) {
+                return new VerifiedBatch(blocks, "Invalid hash for block " + block.hash);
+            }
+            blocks.add(block);
+        }
+        return new VerifiedBatch(blocks, null);
+    }
+
+    // Stage 3: check in order that every block extends the previous one; returns false at the first invalid block
+    private boolean linkBatches(BlockingQueue<Future<VerifiedBatch>> verified, BlockingQueue<List<Block>> linked, Thread writer)
+            throws InterruptedException {
+        int existingSize = blockchainManager.getBlockchain().size();
+        String lastHash = blockchainManager.getLastHash();
+        long position = 0; // Height of the next imported block in the source chain
+
+        Future<VerifiedBatch> pending;
+        boolean valid = true;
+        while (valid && writer.isAlive() && (pending = verified.take()) != END_OF_INPUT) {
+            VerifiedBatch batch;
+            try {
+                batch = pending.get();
+            } catch (ExecutionException e) {
+                System.err.println("Import failed after " + position + " blocks: " + e.getCause().getMessage());
+                return false;
+            }
+
+            List<Block> accepted = new ArrayList<>(batch.blocks.size());
+            for (Block block : batch.blocks) {
+                if (position < existingSize && blockchainManager.getBlockHash((int) position).equals(block.hash)) {
+                    position++; // Already in our chain, e.g. when resuming an interrupted import
+                    continue;
+                }
+                if (position == 0 && blockchainManager.replaceGenesis(block)) {
+                    lastHash = block.hash; // Seeding a fresh node with the archive's own genesis block
+                    position++;
+                    continue;
+                }
+                if (!block.previousHash.equals(lastHash)) {
+                    System.err.println("Import failed: block " + position + " does not extend the chain.");
+                    valid = false;
+                    break;
+                }
+                accepted.add(block);
+                lastHash = block.hash;
+                position++;
+            }
+            if (valid && batch.error != null) {
+                System.err.println("Import failed at block " + position + ": " + batch.error);
+                valid = false;
+            }
+            // Blocks before an invalid one are still appended
+            while (!accepted.isEmpty() && writer.isAlive() && !linked.offer(accepted, 100, TimeUnit.MILLISECONDS)) {
+                // Wait for the writer to make room
+            }
+        }
+        return valid;
+    }
+}
@@ -1,19 +1,55 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class BlockchainManager {
-    private List<Block> blockchain = new ArrayList<>();
+    private final CompactChain blockchain = new CompactChain();
     private static final int DIFFICULTY = 4;
+    private static final int VALIDATION_CHUNK = 1024; // Blocks copied out of the chain at a time by the background validator
+    private static final int CHECKPOINT_INTERVAL = 1000; // Write a checkpoint every this many blocks
+    private static final int SEGMENT_SIZE = 1000; // Blocks per compressed cold segment
     private Path filePath;
+    private Path checkpointPath;
+    private ColdSegmentStore coldStore;
+    private MediaIndex mediaIndex;
+    private int firstFullIndex = 0;      // Blocks before this index are pruned to their headers
+    private long fullBytes = 0;          // Serialized size of the blocks that still hold their body
+    private int maxFullBlocks = 0;       // Keep at most this many full blocks, 0 for no limit
+    private long maxFullBytes = 0;       // Keep at most this many bytes of full blocks, 0 for no limit
+    private ExecutorService miners;      // Parallel nonce search for addMediaBlock, if set
+    private int minerThreads = 1;
+    private boolean closed = false;
+    private volatile boolean historyVerified = false; // True once every block has been fully re-validated
+    private boolean historyInvalid = false;           // Set if the background validation finds a bad block; appends are rejected
+    private MessageDigest indexDigest = Checkpoint.newIndexDigest(); // Running digest of every block hash, for checkpoints
+    private final Object checkpointLock = new Object();  // Serializes checkpoint file writes
+    private int writtenCheckpointHeight = -1;             // Height of the newest checkpoint on disk, guarded by checkpointLock
+    // Periodic checkpoints are written here so appends never wait for the fsync
+    private final ExecutorService checkpointWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    // Start from the checkpoint next to the chain file. The node writes that file itself, so it is trusted
+    // when the loaded chain has its tip hash at its height and the same hash index digest.
     public BlockchainManager(String filePath) {
         this.filePath = Paths.get(filePath);
+        this.checkpointPath = Paths.get(filePath + ".checkpoint");
+        this.coldStore = new ColdSegmentStore(this.filePath, SEGMENT_SIZE);
         // Load blockchain from file
         loadBlockchainFromFile();
+        validateOnStartup(Checkpoint.load(checkpointPath, null));
 
         // If blockchain is empty, create and add a genesis block
         if (blockchain.isEmpty()) {
@@ -21,51 +57,228 @@ public class BlockchainManager {
             Block genesisBlock = new Block("Genesis Block", "0", "", "", 0);
             genesisBlock.mineBlock(DIFFICULTY);
             blockchain.add(genesisBlock);
+            fullBytes += genesisBlock.toString().length();
             saveBlockchainToFile();  // Save genesis block to file
+            Checkpoint.addToIndex(indexDigest, genesisBlock.hash);
+            historyVerified = true;
         }
+
+        // Catch the media index up with blocks appended while it was not running
+        this.mediaIndex = new MediaIndex(Paths.get(filePath + ".media"), blockchain);
+        int nextHeight = mediaIndex.getNextHeight();
+        mediaIndex.addAll(nextHeight, blockchain.subList(nextHeight, blockchain.size()));
+    }
+
+    // Validate the blocks past the checkpoint right away and the history it covers in the background.
+    // An invalid block found before startup completes stops the node from starting at all.
+    private void validateOnStartup(Checkpoint checkpoint) {
+        if (blockchain.isEmpty()) {
+            return;
+        }
+        if (!rebuildIndexDigest(checkpoint)) {
+            if (checkpoint != null) {
+                System.out.println("Checkpoint does not match the loaded blockchain, validating every block.");
+            }
+            if (!isRangeValid(blockchain, 1, blockchain.size(), 0)) {
+                throw new IllegalStateException("Blockchain file " + filePath + " failed validation, refusing to start.");
+            }
+            historyVerified = true;
+            return;
+        }
+        int trustedHeight = checkpoint.getHeight();
+        System.out.println("Starting from checkpoint at height " + trustedHeight + " (" + checkpoint.getTipHash() + ").");
+        if (!isRangeValid(blockchain, trustedHeight + 1, blockchain.size(), 0)) {
+            throw new IllegalStateException("Blocks after the checkpoint at height " + trustedHeight + " failed validation, refusing to start.");
+        }
+
+        Thread validator = new Thread(() -> {
+            // Copy the history out in chunks so appends only wait for a short copy, not for the hashing
+            boolean valid = true;
+            for (int start = 0; valid && start < trustedHeight; start += VALIDATION_CHUNK) {
+                List<Block> chunk;
+                synchronized (this) {
+                    chunk = new ArrayList<>(blockchain.subList(start, Math.min(start + VALIDATION_CHUNK + 1, trustedHeight + 1)));
+                }
+                valid = isRangeValid(chunk, 1, chunk.size(), start);
+            }
+            if (valid) {
+                historyVerified = true;
+                System.out.println("Background validation of " + (trustedHeight + 1) + " checkpointed blocks succeeded.");
+            } else {
+                // The node is already serving, so stop it from building on top of a bad history
+                synchronized (this) {
+                    historyInvalid = true;
+                }
+                System.err.println("Background validation of " + (trustedHeight + 1) + " checkpointed blocks FAILED,"
+                        + " rejecting new blocks. Restore the chain file or restart without the checkpoint.");
+            }
+        }, "checkpoint-validator");
+        validator.setDaemon(true);
+        validator.setPriority(Thread.MIN_PRIORITY);
+        validator.start();
     }
 
-    // Load blockchain from a file
+    // Feed every block hash into the running index digest; returns whether the chain passes through the given checkpoint
+    private boolean rebuildIndexDigest(Checkpoint checkpoint) {
+        indexDigest = Checkpoint.newIndexDigest();
+        boolean matched = false;
+        for (int i = 0; i < blockchain.size(); i++) {
+            String hash = blockchain.hashAt(i);
+            Checkpoint.addToIndex(indexDigest, hash);
+            if (checkpoint != null && i == checkpoint.getHeight()) {
+                matched = checkpoint.matches(i, hash, indexDigest);
+            }
+        }
+        return matched;
+    }
+
+    // Load blockchain from a file, starting with the headers of archived blocks
     private void loadBlockchainFromFile() {
+        blockchain.addAll(coldStore.loadHeaders());
+        firstFullIndex = blockchain.size();
         try (BufferedReader reader = Files.newBufferedReader(filePath)) {
             String line;
+            int skipped = 0;
+            int duplicateHeight = -1; // Height of the archived block the current hot block duplicates
             while ((line = reader.readLine()) != null) {
                 Block block = Block.fromString(line);
                 if (block != null) { // Ensure block is valid before adding
+                    // Skip blocks that were archived but not yet removed from the hot file by an interrupted prune
+                    if (blockchain.size() == firstFullIndex && firstFullIndex > 0
+                            && !block.previousHash.equals(blockchain.get(firstFullIndex - 1).hash)) {
+                        duplicateHeight = duplicateHeight < 0 ? findArchivedHeight(block.hash) : duplicateHeight + 1;
+                        if (duplicateHeight < 0 || duplicateHeight >= firstFullIndex
+                                || !blockchain.get(duplicateHeight).hash.equals(block.hash)) {
+                            throw new IllegalStateException("Blockchain file does not continue the archived headers after block "
+                                    + (firstFullIndex - 1) + ", refusing to load it.");
+                        }
+                        skipped++;
+                        continue;
+                    }
                     blockchain.add(block);
+                    fullBytes += line.length();
                 }
             }
-            System.out.println("Blockchain loaded from file with " + blockchain.size() + " blocks.");
+            if (skipped > 0) {
+                System.out.println("Skipped " + skipped + " blocks already archived in cold segments.");
+                saveBlockchainToFile(); // Finish the interrupted prune
+            }
+            System.out.println("Blockchain loaded from file with " + blockchain.size() + " blocks (" + firstFullIndex + " pruned).");
         } catch (IOException e) {
             System.out.println("No blockchain file found or could not read file. Starting new blockchain. Error: " + e.getMessage());
         }
     }
 
-    // Save the blockchain to a file
-    public void saveBlockchainToFile() {
-        try (BufferedWriter writer = Files.newBufferedWriter(filePath)) { // Start fresh on the first run
-            for (Block block : blockchain) {
+    // Height of the archived header with the given hash, searching from the newest, or -1
+    private int findArchivedHeight(String hash) {
+        for (int i = firstFullIndex - 1; i >= 0; i--) {
+            if (blockchain.get(i).hash.equals(hash)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Save the blocks that are not archived in cold segments to a file
+    // The file is the only copy of the full blocks, so it is written to a temporary file, synced and moved over the old one
+    public synchronized void saveBlockchainToFile() {
+        Path tmp = Paths.get(filePath + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+            for (Block block : blockchain.subList(firstFullIndex, blockchain.size())) {
                 writer.write(block.toString());
                 writer.newLine();
             }
+            writer.flush();
+            out.getFD().sync();
         } catch (IOException e) {
             System.err.println("Failed to save blockchain to file: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to replace blockchain file: " + e.getMessage());
         }
     }
 
     // Add block to blockchain and save to file
     public synchronized boolean addBlock(Block newBlock) {
-        Block lastBlock = getLastBlock();
-        if (lastBlock == null || (newBlock.previousHash.equals(lastBlock.hash) && newBlock.hash.equals(newBlock.calculateHash()))) {
+        if (closed || historyInvalid) {
+            System.out.println("Blockchain is " + (closed ? "closed" : "invalid") + ", block rejected: " + newBlock.hash);
+            return false;
+        }
+        String lastHash = getLastHash();
+        if (lastHash == null || (newBlock.previousHash.equals(lastHash) && newBlock.hash.equals(newBlock.calculateHash()))) {
             blockchain.add(newBlock);
+            Checkpoint.addToIndex(indexDigest, newBlock.hash);
+            fullBytes += newBlock.toString().length();
             appendBlockToFile(newBlock); // Append new block to the file
+            mediaIndex.add(blockchain.size() - 1, newBlock);
             System.out.println("Block added to chain: " + newBlock.hash);
+            if (blockchain.size() % CHECKPOINT_INTERVAL == 0) {
+                Checkpoint checkpoint = getCheckpoint();
+                checkpointWriter.execute(() -> saveCheckpoint(checkpoint));
+            }
+            pruneIfNeeded();
             return true;
         }
         System.out.println("Invalid block: Previous hash does not match.");
         return false;
     }
 
+    // Append a batch of blocks whose hashes and links among themselves were already verified, with one fsync
+    synchronized boolean appendBlocks(List<Block> batch) {
+        if (closed || historyInvalid) {
+            System.out.println("Blockchain is " + (closed ? "closed" : "invalid") + ", batch rejected.");
+            return false;
+        }
+        if (batch.isEmpty()) {
+            return true;
+        }
+        String lastHash = getLastHash();
+        if (lastHash != null && !batch.get(0).previousHash.equals(lastHash)) {
+            System.out.println("Invalid batch: Previous hash does not match.");
+            return false;
+        }
+        StringBuilder lines = new StringBuilder();
+        long batchBytes = 0;
+        for (Block block : batch) {
+            String line = block.toString();
+            lines.append(line).append(System.lineSeparator());
+            batchBytes += line.length();
+        }
+        try (FileOutputStream out = new FileOutputStream(filePath.toFile(), true)) {
+            out.write(lines.toString().getBytes());
+            out.getFD().sync();
+        } catch (IOException e) {
+            System.err.println("Failed to append batch to file: " + e.getMessage());
+            return false;
+        }
+        fullBytes += batchBytes;
+        int firstHeight = blockchain.size();
+        blockchain.addAll(batch);
+        for (Block block : batch) {
+            Checkpoint.addToIndex(indexDigest, block.hash);
+        }
+        mediaIndex.addAll(firstHeight, batch);
+        pruneIfNeeded(); // The importer writes one checkpoint once it is done
+        return true;
+    }
+
+    // Replace a chain that only holds its own genesis block with another genesis block, e.g. before importing an archive
+    synchronized boolean replaceGenesis(Block genesisBlock) {
+        if (blockchain.size() != 1 || firstFullIndex != 0 || !"0".equals(genesisBlock.previousHash)) {
+            return false;
+        }
+        blockchain.set(0, genesisBlock);
+        indexDigest = Checkpoint.newIndexDigest();
+        Checkpoint.addToIndex(indexDigest, genesisBlock.hash);
+        fullBytes = genesisBlock.toString().length();
+        saveBlockchainToFile();
+        return true;
+    }
+
     // Append new block to the blockchain file
     private void appendBlockToFile(Block newBlock) {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath.toFile(), true))) { // Append to the file
@@ -76,23 +289,137 @@ public class BlockchainManager {
         }
     }
 
+    // Keep full bodies only for the newest blocks; 0 disables a limit
+    public synchronized void setRetention(int maxFullBlocks, long maxFullBytes) {
+        this.maxFullBlocks = maxFullBlocks;
+        this.maxFullBytes = maxFullBytes;
+        pruneIfNeeded();
+    }
+
+    // Move whole segments of the oldest full blocks into cold storage until the retention limits hold
+    private void pruneIfNeeded() {
+        boolean pruned = false;
+        while (exceedsRetention() && blockchain.size() - firstFullIndex > SEGMENT_SIZE) {
+            List<Block> segment = blockchain.subList(firstFullIndex, firstFullIndex + SEGMENT_SIZE);
+            try {
+                coldStore.archive(firstFullIndex, segment);
+            } catch (IOException e) {
+                System.err.println("Failed to archive blocks from " + firstFullIndex + ": " + e.getMessage());
+                break;
+            }
+            for (int i = firstFullIndex; i < firstFullIndex + SEGMENT_SIZE; i++) {
+                Block block = blockchain.get(i);
+                fullBytes -= block.toString().length();
+                blockchain.set(i, block.toHeader());
+            }
+            firstFullIndex += SEGMENT_SIZE;
+            pruned = true;
+        }
+        if (pruned) {
+            saveBlockchainToFile(); // Drop the archived blocks from the hot file
+            System.out.println("Pruned blockchain to " + (blockchain.size() - firstFullIndex) + " full blocks.");
+        }
+    }
+
+    // Archiving another segment must not leave fewer than maxFullBlocks full blocks behind
+    private boolean exceedsRetention() {
+        int fullBlocks = blockchain.size() - firstFullIndex;
+        return (maxFullBlocks > 0 && fullBlocks - SEGMENT_SIZE >= maxFullBlocks) || (maxFullBytes > 0 && fullBytes > maxFullBytes);
+    }
+
+    // Get a block with its body, reading it back from cold storage if it was pruned
+    public Block getFullBlock(int index) {
+        Block block = blockchain.get(index);
+        return block.isPruned() ? coldStore.readBlock(index) : block;
+    }
+
+    // Mine new media blocks on the given executor with this many workers
+    public synchronized void setMiners(ExecutorService miners, int minerThreads) {
+        this.miners = miners;
+        this.minerThreads = minerThreads;
+    }
+
+    // Wait for in-flight appends, fsync the chain file, write a final checkpoint and reject further blocks
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        checkpointWriter.shutdown();
+        try {
+            checkpointWriter.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            System.err.println("Failed to sync blockchain file: " + e.getMessage());
+        }
+        writeCheckpoint();
+        mediaIndex.close();
+    }
+
+    // Write a checkpoint of the current chain next to the chain file
+    public Checkpoint writeCheckpoint() {
+        Checkpoint checkpoint = getCheckpoint();
+        saveCheckpoint(checkpoint);
+        return checkpoint;
+    }
+
+    // Runs without the manager's lock; only the snapshot in getCheckpoint() needs it
+    private void saveCheckpoint(Checkpoint checkpoint) {
+        synchronized (checkpointLock) {
+            if (checkpoint.getHeight() < writtenCheckpointHeight) {
+                return; // A newer checkpoint is already on disk
+            }
+            try {
+                checkpoint.writeTo(checkpointPath);
+                writtenCheckpointHeight = checkpoint.getHeight();
+                System.out.println("Checkpoint written at height " + checkpoint.getHeight() + " with digest " + checkpoint.getDigest());
+            } catch (IOException e) {
+                System.err.println("Failed to write checkpoint: " + e.getMessage());
+            }
+        }
+    }
+
     // Validate the blockchain
     public boolean isBlockchainValid() {
-        for (int i = 1; i < blockchain.size(); i++) {
-            Block currentBlock = blockchain.get(i);
-            Block previousBlock = blockchain.get(i - 1);
+        return isRangeValid(blockchain, 1, blockchain.size(), 0);
+    }
 
-            // Check if the hash of the current block is correct
-            if (!currentBlock.hash.equals(currentBlock.calculateHash())) {
-                System.out.println("Invalid hash at block " + i);
+    // Validate the blocks in [from, to) of the given chain against their hashes and predecessors;
+    // baseHeight is the height of chain.get(0), used to find pruned blocks in cold storage and in the log messages
+    private boolean isRangeValid(List<Block> chain, int from, int to, int baseHeight) {
+        from = Math.max(from, 1);
+        if (from >= to) {
+            return true;
+        }
+        Block previousBlock = chain.get(from - 1);
+        for (int i = from; i < to; i++) {
+            Block currentBlock = chain.get(i);
+
+            // Check if the hash of the current block is correct; a pruned block is checked through its archived body
+            Block fullBlock = currentBlock;
+            if (currentBlock.isPruned()) {
+                fullBlock = coldStore.readBlock(baseHeight + i);
+                if (fullBlock == null || !fullBlock.toHeaderString().equals(currentBlock.toHeaderString())
+                        || !fullBlock.previousHash.equals(currentBlock.previousHash)) {
+                    System.out.println("Archived block does not match its header at block " + (baseHeight + i));
+                    return false;
+                }
+            }
+            if (!fullBlock.hash.equals(fullBlock.calculateHash())) {
+                System.out.println("Invalid hash at block " + (baseHeight + i));
                 return false;
             }
 
             // Check if the previous hash is correct
             if (!currentBlock.previousHash.equals(previousBlock.hash)) {
-                System.out.println("Invalid previous hash at block " + i);
+                System.out.println("Invalid previous hash at block " + (baseHeight + i));
                 return false;
             }
+            previousBlock = currentBlock;
         }
         return true;
     }
@@ -101,19 +428,47 @@ public class BlockchainManager {
         return blockchain.isEmpty() ? null : blockchain.get(blockchain.size() - 1);
     }
 
+    // Hashes are read straight from the chain's hash column, without decoding the rest of the block
+    public String getLastHash() {
+        int size = blockchain.size();
+        return size == 0 ? null : blockchain.hashAt(size - 1);
+    }
+
+    public String getBlockHash(int index) {
+        return blockchain.hashAt(index);
+    }
+
     public List<Block> getBlockchain() {
         return blockchain;
     }
 
+    // Current checkpoint of the chain, e.g. to serve it to peers
+    public synchronized Checkpoint getCheckpoint() {
+        int height = blockchain.size() - 1;
+        return Checkpoint.fromIndex(height, height < 0 ? "0" : blockchain.hashAt(height), DIFFICULTY, indexDigest);
+    }
+
+    public MediaIndex getMediaIndex() {
+        return mediaIndex;
+    }
+
+    public boolean isHistoryVerified() {
+        return historyVerified;
+    }
+
     public int getDifficulty() {
         return DIFFICULTY;
     }
 
     // Add a new media block to the blockchain
     public synchronized boolean addMediaBlock(String data, String mediaFilePath, String mediaType, long mediaSize) {
-        Block lastBlock = getLastBlock();
-        Block newBlock = new Block(data, lastBlock != null ? lastBlock.hash : "0", mediaFilePath, mediaType, mediaSize);
-        newBlock.mineBlock(DIFFICULTY); // Mine the new block
+        String lastHash = getLastHash();
+        Block newBlock = new Block(data, lastHash != null ? lastHash : "0", mediaFilePath, mediaType, mediaSize);
+        if (miners != null) {
+            newBlock.mineBlock(DIFFICULTY, miners, minerThreads); // Mine the new block in parallel
+        } else {
+            newBlock.mineBlock(DIFFICULTY); // Mine the new block
+        }
         return addBlock(newBlock); // Add the newly created media block to the blockchain
     }
 }
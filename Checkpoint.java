@@ -0,0 +1,198 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+// Compact snapshot of the chain state: tip hash, height, cumulative work and a SHA-256 digest of the block hash index.
+// A node can trust the blocks covered by a checkpoint on startup and re-validate them later in the background.
+// This only defers the SHA-256 re-validation: every block is still parsed from the chain file before the node starts,
+// so startup remains linear in the chain length.
+public class Checkpoint {
+    private static final String HEADER = "CHECKPOINT";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int height;            // Index of the tip block (genesis is height 0)
+    private final String tipHash;        // Hash of the tip block
+    private final long cumulativeWork;   // Expected number of hashes needed to produce the chain
+    private final String indexDigest;    // SHA-256 over the block hashes ordered by height, one per line
+
+    public Checkpoint(int height, String tipHash, long cumulativeWork, String indexDigest) {
+        this.height = height;
+        this.tipHash = tipHash;
+        this.cumulativeWork = cumulativeWork;
+        this.indexDigest = indexDigest;
+    }
+
+    // Running digest of the hash index; feed it every block hash in chain order with addToIndex
+    public static MessageDigest newIndexDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void addToIndex(MessageDigest index, String hash) {
+        index.update(hash.getBytes(StandardCharsets.UTF_8));
+        index.update((byte) '\n');
+    }
+
+    // Build a checkpoint at the given tip from a running index digest, which stays usable afterwards
+    public static Checkpoint fromIndex(int height, String tipHash, int difficulty, MessageDigest index) {
+        long workPerBlock = 1L << (4 * difficulty); // Each leading hex zero takes 16 attempts on average
+        return new Checkpoint(height, tipHash, workPerBlock * (height + 1), currentDigest(index));
+    }
+
+    // Build a checkpoint covering every block of the given chain
+    public static Checkpoint fromChain(List<Block> chain, int difficulty) {
+        MessageDigest index = newIndexDigest();
+        for (int i = 0; i < chain.size(); i++) {
+            addToIndex(index, hashAt(chain, i));
+        }
+        return fromIndex(chain.size() - 1, chain.isEmpty() ? "0" : hashAt(chain, chain.size() - 1), difficulty, index);
+    }
+
+    // Check that the given chain starts with exactly the blocks recorded in this checkpoint
+    public boolean matches(List<Block> chain) {
+        if (chain.size() <= height) {
+            return false;
+        }
+        MessageDigest index = newIndexDigest();
+        for (int i = 0; i <= height; i++) {
+            addToIndex(index, hashAt(chain, i));
+        }
+        return matches(height, hashAt(chain, height), index);
+    }
+
+    // Check a chain whose hashes up to and including the given height were fed into the running index digest
+    public boolean matches(int height, String tipHash, MessageDigest index) {
+        return this.height == height && this.tipHash.equals(tipHash) && indexDigest.equals(currentDigest(index));
+    }
+
+    // Read the hash columns of a CompactChain directly instead of materializing every block
+    private static String hashAt(List<Block> chain, int index) {
+        return chain instanceof CompactChain ? ((CompactChain) chain).hashAt(index) : chain.get(index).hash;
+    }
+
+    private static String currentDigest(MessageDigest index) {
+        try {
+            return toHex(((MessageDigest) index.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hexChars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hexChars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hexChars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hexChars);
+    }
+
+    // SHA-256 of the serialized checkpoint, used to pin a trusted checkpoint
+    public String getDigest() {
+        return toHex(newIndexDigest().digest(toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Write and sync a temporary file first so a crash never leaves a truncated checkpoint behind
+    public void writeTo(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            out.write(toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Load a checkpoint from disk; returns null if it is missing, malformed or does not match the pinned digest
+    public static Checkpoint load(Path path, String expectedDigest) {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return verify(read(reader), expectedDigest);
+        } catch (IOException e) {
+            System.out.println("No checkpoint loaded from " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Download the checkpoint served by a peer on its /snapshot endpoint
+    public static Checkpoint fetchFromPeer(String ip, int port, String expectedDigest) {
+        try (Socket socket = new Socket(ip, port)) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.print("GET /snapshot HTTP/1.1\r\n\r\n");
+            out.flush();
+
+            String statusLine = in.readLine();
+            if (statusLine == null || !statusLine.contains("200")) {
+                System.out.println("Peer " + ip + ":" + port + " did not serve a snapshot: " + statusLine);
+                return null;
+            }
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                // Skip the response headers
+            }
+            return verify(read(in), expectedDigest);
+        } catch (IOException e) {
+            System.err.println("Failed to fetch snapshot from " + ip + ":" + port + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Checkpoint verify(Checkpoint checkpoint, String expectedDigest) {
+        if (checkpoint == null) {
+            return null;
+        }
+        if (expectedDigest != null && !expectedDigest.equals(checkpoint.getDigest())) {
+            System.err.println("Checkpoint digest does not match the pinned digest " + expectedDigest);
+            return null;
+        }
+        return checkpoint;
+    }
+
+    private static Checkpoint read(BufferedReader reader) throws IOException {
+        String header = reader.readLine();
+        if (header == null) {
+            return null;
+        }
+        String[] parts = header.split(";");
+        if (parts.length != 5 || !HEADER.equals(parts[0])) {
+            System.err.println("Invalid checkpoint header: " + header);
+            return null;
+        }
+        try {
+            return new Checkpoint(Integer.parseInt(parts[1]), parts[2], Long.parseLong(parts[3]), parts[4]);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid checkpoint header: " + header);
+            return null;
+        }
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getTipHash() {
+        return tipHash;
+    }
+
+    public long getCumulativeWork() {
+        return cumulativeWork;
+    }
+
+    public String getIndexDigest() {
+        return indexDigest;
+    }
+
+    // A single line, so the checkpoint stays the same size however long the chain grows
+    @Override
+    public String toString() {
+        return HEADER + ";" + height + ";" + tipHash + ";" + cumulativeWork + ";" + indexDigest + "\n";
+    }
+}
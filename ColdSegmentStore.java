@@ -0,0 +1,168 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Stores the bodies of old blocks in deflate-compressed segment files and their headers in one headers file.
+// The headers file holds one frame per segment: a 4-byte length followed by the deflated header lines of the segment,
+// led by the previous hash of its first block. Later previous hashes are derived from the header before them.
+public class ColdSegmentStore {
+    private final Path chainFile;     // Hot chain file the segments belong to
+    private final Path headersPath;   // Header frames of every archived segment, in chain order
+    private final int segmentSize;    // Number of blocks per segment
+    private int archivedBlocks = -1;  // Headers of whole segments in the headers file, -1 until it has been read
+    private long headersLength = 0;   // Bytes of the headers file taken by those frames
+
+    // Only the most recently read segment is kept in memory
+    private int cachedSegmentStart = -1;
+    private List<Block> cachedSegment;
+
+    public ColdSegmentStore(Path chainFile, int segmentSize) {
+        this.chainFile = chainFile;
+        this.headersPath = Paths.get(chainFile + ".headers");
+        this.segmentSize = segmentSize;
+    }
+
+    // Load the headers of every archived block
+    public synchronized List<Block> loadHeaders() {
+        List<Block> headers = new ArrayList<>();
+        archivedBlocks = 0;
+        headersLength = 0;
+        if (!Files.exists(headersPath)) {
+            return headers;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(headersPath)))) {
+            long fileSize = Files.size(headersPath);
+            while (true) {
+                // Only whole segments count as archived; the next archive run truncates anything after them
+                List<Block> segment = readFrame(in, fileSize);
+                if (segment == null) {
+                    break;
+                }
+                headers.addAll(segment);
+                archivedBlocks += segmentSize;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read archived block headers", e);
+        }
+        return headers;
+    }
+
+    // Read the header frame of one segment, or return null at the end of the file or at a torn frame
+    private List<Block> readFrame(DataInputStream in, long fileSize) throws IOException {
+        byte[] frame;
+        try {
+            int length = in.readInt();
+            if (length <= 0 || headersLength + 4 + length > fileSize) {
+                return null; // A torn length
+            }
+            frame = new byte[length];
+            in.readFully(frame);
+        } catch (EOFException e) {
+            return null; // The end of the file, or a frame cut off by an interrupted archive run
+        }
+        List<Block> segment = new ArrayList<>(segmentSize);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new InflaterInputStream(new ByteArrayInputStream(frame)), StandardCharsets.UTF_8))) {
+            String previousHash = reader.readLine();
+            String line;
+            while (previousHash != null && (line = reader.readLine()) != null) {
+                Block header = Block.fromHeaderString(line, previousHash);
+                if (header == null) {
+                    return null;
+                }
+                segment.add(header);
+                previousHash = header.hash;
+            }
+        } catch (IOException e) {
+            return null; // A frame whose bytes were not fully written
+        }
+        if (segment.size() != segmentSize) {
+            return null;
+        }
+        headersLength += 4 + frame.length;
+        return segment;
+    }
+
+    // Compress one segment of full blocks starting at the given chain index and record their headers
+    public synchronized void archive(int firstIndex, List<Block> blocks) throws IOException {
+        if (archivedBlocks < 0) {
+            loadHeaders();
+        }
+        if (firstIndex != archivedBlocks || blocks.size() != segmentSize) {
+            throw new IllegalArgumentException("Segments must hold " + segmentSize + " blocks and start right after the last archived block.");
+        }
+        Path segmentPath = segmentPath(firstIndex);
+        Path tmp = Paths.get(segmentPath + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION));
+            Writer writer = new OutputStreamWriter(deflater, StandardCharsets.UTF_8);
+            for (Block block : blocks) {
+                writer.write(block.toString());
+                writer.write('\n');
+            }
+            writer.flush();
+            deflater.finish();
+            out.getFD().sync();
+        }
+        Files.move(tmp, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        StringBuilder lines = new StringBuilder();
+        lines.append(blocks.get(0).previousHash).append('\n');
+        for (Block block : blocks) {
+            lines.append(block.toHeaderString()).append('\n');
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_COMPRESSION))) {
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] bytes = ByteBuffer.allocate(4 + compressed.size()).putInt(compressed.size()).put(compressed.toByteArray()).array();
+        try (FileChannel channel = FileChannel.open(headersPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(headersLength); // Drop a partial segment left by an interrupted run
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = headersLength;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(true); // The hot file is rewritten after this, so the headers must be durable first
+        }
+        headersLength += bytes.length;
+        archivedBlocks += segmentSize;
+    }
+
+    // Read the full block at the given chain index from its cold segment
+    public synchronized Block readBlock(int index) {
+        int segmentStart = index - index % segmentSize;
+        if (segmentStart != cachedSegmentStart) {
+            List<Block> segment = new ArrayList<>(segmentSize);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new InflaterInputStream(Files.newInputStream(segmentPath(segmentStart))), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    segment.add(Block.fromString(line));
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to read cold segment at " + segmentStart + ": " + e.getMessage());
+                return null;
+            }
+            cachedSegment = segment;
+            cachedSegmentStart = segmentStart;
+        }
+        int offset = index - segmentStart;
+        return offset < cachedSegment.size() ? cachedSegment.get(offset) : null;
+    }
+
+    private Path segmentPath(int firstIndex) {
+        return Paths.get(chainFile + ".seg-" + firstIndex + ".z");
+    }
+}
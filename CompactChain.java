@@ -0,0 +1,211 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Columnar chain container: hashes are stored as raw 32-byte values, previous hashes are derived from the parent,
+// media types are dictionary encoded and data is kept as UTF-8 bytes until a block is read.
+// get() materializes a new Block each time, decoding its data, so callers that only need hashes should use hashAt().
+// Changes must be written back with set().
+// All public methods are synchronized, so indexed reads without the manager's lock never see a half-written block.
+// iterator() is weakly consistent: it walks the blocks present when it was created and ignores later appends.
+// subList views still fail on concurrent appends, so copy them while holding the manager's lock.
+public class CompactChain extends AbstractList<Block> implements RandomAccess {
+    private static final int HASH_BYTES = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private byte[] hashes = new byte[16 * HASH_BYTES];
+    private long[] timestamps = new long[16];
+    private int[] nonces = new int[16];
+    private long[] mediaSizes = new long[16];
+    private int[] mediaTypeIds = new int[16];   // Index into mediaTypes, -1 for null
+    private byte[][] data = new byte[16][];     // null for pruned blocks
+    private byte[][] mediaFilePaths = new byte[16][];
+    private int size = 0;
+
+    private final List<String> mediaTypes = new ArrayList<>();
+    private final Map<String, Integer> mediaTypeIdsByName = new HashMap<>();
+
+    // Rare blocks that do not fit the compact layout keep their original strings here
+    private final Map<Integer, String> previousHashOverrides = new HashMap<>(); // previousHash is not the parent's hash
+    private final Map<Integer, String> hashOverrides = new HashMap<>();         // hash is not 64 hex characters
+
+    @Override
+    public synchronized Block get(int index) {
+        checkIndex(index);
+        return new Block(hashAt(index), previousHashAt(index), dataAt(index), timestamps[index], nonces[index],
+                decode(mediaFilePaths[index]), mediaTypeAt(index), mediaSizes[index]);
+    }
+
+    // The chain only grows at its end and set() replaces blocks in place, so walking a fixed prefix by index is safe
+    @Override
+    public Iterator<Block> iterator() {
+        int end = size();
+        return new Iterator<Block>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public Block next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean add(Block block) {
+        if (size == timestamps.length) {
+            grow();
+        }
+        store(size, block);
+        size++; // Only publish the slot once it is fully written
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public synchronized Block set(int index, Block block) {
+        checkIndex(index);
+        Block previous = get(index);
+        String childPreviousHash = index + 1 < size ? previousHashAt(index + 1) : null;
+        store(index, block);
+        if (childPreviousHash != null) {
+            // The child derives its previous hash from this block, so keep its original value if the hash changed
+            setPreviousHash(index + 1, childPreviousHash);
+        }
+        return previous;
+    }
+
+    public synchronized String hashAt(int index) {
+        checkIndex(index);
+        String override = hashOverrides.get(index);
+        return override != null ? override : toHex(hashes, index * HASH_BYTES);
+    }
+
+    public synchronized String previousHashAt(int index) {
+        checkIndex(index);
+        String override = previousHashOverrides.get(index);
+        if (override != null) {
+            return override;
+        }
+        return hashAt(index - 1); // Index 0 always has an override
+    }
+
+    // Decode the data of a block without materializing the rest of it
+    public synchronized String dataAt(int index) {
+        checkIndex(index);
+        return decode(data[index]);
+    }
+
+    public synchronized String mediaTypeAt(int index) {
+        checkIndex(index);
+        return mediaTypeIds[index] < 0 ? null : mediaTypes.get(mediaTypeIds[index]);
+    }
+
+    private void store(int index, Block block) {
+        if (!writeHash(index, block.hash)) {
+            hashOverrides.put(index, block.hash);
+        } else {
+            hashOverrides.remove(index);
+        }
+        setPreviousHash(index, block.previousHash);
+        timestamps[index] = block.timestamp;
+        nonces[index] = block.nonce;
+        mediaSizes[index] = block.mediaSize;
+        mediaTypeIds[index] = mediaTypeId(block.mediaType);
+        data[index] = encode(block.data);
+        mediaFilePaths[index] = encode(block.mediaFilePath);
+    }
+
+    private void setPreviousHash(int index, String previousHash) {
+        if (index > 0 && previousHash != null && previousHash.equals(hashAt(index - 1))) {
+            previousHashOverrides.remove(index);
+        } else {
+            previousHashOverrides.put(index, previousHash);
+        }
+    }
+
+    private int mediaTypeId(String mediaType) {
+        if (mediaType == null) {
+            return -1;
+        }
+        Integer id = mediaTypeIdsByName.get(mediaType);
+        if (id == null) {
+            id = mediaTypes.size();
+            mediaTypes.add(mediaType);
+            mediaTypeIdsByName.put(mediaType, id);
+        }
+        return id;
+    }
+
+    // Parse a 64-character lowercase hex hash into the hash column; returns false if it is not one
+    private boolean writeHash(int index, String hash) {
+        if (hash == null || hash.length() != HASH_BYTES * 2) {
+            return false;
+        }
+        int offset = index * HASH_BYTES;
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int high = hexValue(hash.charAt(i * 2));
+            int low = hexValue(hash.charAt(i * 2 + 1));
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            hashes[offset + i] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1; // Uppercase hex would not round-trip, so it is kept as an override
+    }
+
+    private static String toHex(byte[] bytes, int offset) {
+        char[] hexChars = new char[HASH_BYTES * 2];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            hexChars[i * 2] = HEX_DIGITS[(bytes[offset + i] >> 4) & 0xf];
+            hexChars[i * 2 + 1] = HEX_DIGITS[bytes[offset + i] & 0xf];
+        }
+        return new String(hexChars);
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decode(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private void grow() {
+        int capacity = timestamps.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity * HASH_BYTES);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        nonces = Arrays.copyOf(nonces, capacity);
+        mediaSizes = Arrays.copyOf(mediaSizes, capacity);
+        mediaTypeIds = Arrays.copyOf(mediaTypeIds, capacity);
+        data = Arrays.copyOf(data, capacity);
+        mediaFilePaths = Arrays.copyOf(mediaFilePaths, capacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Compares the heap footprint of a chain held as Block objects with the same chain held in a CompactChain.
+// Run with: java -Xmx2g CompactChainBenchmark [blocks]
+public class CompactChainBenchmark {
+    private static final String[] MEDIA_TYPES = {"video", "audio", "image/jpeg"};
+
+    public static void main(String[] args) {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.println("Building a chain of " + blocks + " blocks...");
+
+        long baseline = usedHeap();
+        List<Block> objects = new ArrayList<>();
+        fill(objects, blocks);
+        long objectBytes = usedHeap() - baseline;
+        String objectTip = objects.get(blocks - 1).hash;
+        objects = null;
+
+        baseline = usedHeap();
+        CompactChain compact = new CompactChain();
+        fill(compact, blocks);
+        long compactBytes = usedHeap() - baseline;
+        String compactTip = compact.hashAt(blocks - 1);
+
+        System.out.println("List<Block>:  " + (objectBytes / (1024 * 1024)) + " MB (" + (objectBytes / blocks) + " bytes/block)");
+        System.out.println("CompactChain: " + (compactBytes / (1024 * 1024)) + " MB (" + (compactBytes / blocks) + " bytes/block)");
+        System.out.println("Saved " + String.format("%.1f", 100.0 * (objectBytes - compactBytes) / objectBytes) + "% of the heap"
+                + (objectTip.equals(compactTip) ? "." : ", but the chains differ!"));
+    }
+
+    // Build the same chain into the target, parsing each block from its line like loadBlockchainFromFile does
+    private static void fill(List<Block> target, int blocks) {
+        String previousHash = "0";
+        for (int i = 0; i < blocks; i++) {
+            String mediaType = MEDIA_TYPES[i % MEDIA_TYPES.length];
+            Block block = new Block("Uploaded media: file-" + i + ".bin", previousHash, "/data/media/file-" + i + ".bin", mediaType, 1024L * i);
+            block.timestamp = 1700000000000L + i;
+            block.hash = block.calculateHash();
+            target.add(Block.fromString(block.toString()));
+            previousHash = block.hash;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,293 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Secondary index of media blocks by type, ordered by timestamp, persisted as an append-only file.
+// Every flush ends with a tip record (height and hash of the last indexed block), so the file can be checked against the chain.
+public class MediaIndex {
+    private static final String TIP = "TIP";
+
+    private final Map<String, TypeIndex> types = new HashMap<>();
+    private BufferedWriter writer;
+    private int nextHeight = 0;     // Every block below this height has been indexed
+    private String tipHash = null;  // Hash of the block at nextHeight - 1
+
+    // A single indexed media block
+    public static class Entry {
+        public final int height;
+        public final String mediaType;
+        public final long timestamp;
+        public final long mediaSize;
+
+        Entry(int height, String mediaType, long timestamp, long mediaSize) {
+            this.height = height;
+            this.mediaType = mediaType;
+            this.timestamp = timestamp;
+            this.mediaSize = mediaSize;
+        }
+
+        @Override
+        public String toString() {
+            return height + ";" + mediaType + ";" + timestamp + ";" + mediaSize;
+        }
+    }
+
+    // Parallel primitive arrays for one media type, sorted by timestamp and then height,
+    // with a max tree over the sizes so a size filter can skip whole runs of small blocks
+    private static class TypeIndex {
+        long[] timestamps = new long[16];
+        long[] sizes = new long[16];
+        int[] heights = new int[16];
+        int count = 0;
+        long[] maxSizes = new long[32]; // maxSizes[1] is the root, the leaf of position i is maxSizes[capacity + i]
+        boolean treeDirty = false;      // Set when an insert shifted entries; the tree is rebuilt on the next query
+
+        void insert(int height, long timestamp, long size) {
+            if (count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                heights = Arrays.copyOf(heights, count * 2);
+                maxSizes = new long[count * 4];
+                treeDirty = true;
+            }
+            // Blocks arrive roughly in time order, so this is almost always an append
+            int position = count;
+            while (position > 0 && (timestamps[position - 1] > timestamp
+                    || (timestamps[position - 1] == timestamp && heights[position - 1] > height))) {
+                position--;
+            }
+            System.arraycopy(timestamps, position, timestamps, position + 1, count - position);
+            System.arraycopy(sizes, position, sizes, position + 1, count - position);
+            System.arraycopy(heights, position, heights, position + 1, count - position);
+            timestamps[position] = timestamp;
+            sizes[position] = size;
+            heights[position] = height;
+            count++;
+            if (position != count - 1) {
+                treeDirty = true;
+            } else if (!treeDirty) {
+                // An append only changes the path from its leaf to the root
+                int node = timestamps.length + position;
+                maxSizes[node] = size;
+                for (node >>= 1; node > 0; node >>= 1) {
+                    maxSizes[node] = Math.max(maxSizes[2 * node], maxSizes[2 * node + 1]);
+                }
+            }
+        }
+
+        private void rebuildTree() {
+            int capacity = timestamps.length;
+            Arrays.fill(maxSizes, capacity + count, 2 * capacity, Long.MIN_VALUE);
+            System.arraycopy(sizes, 0, maxSizes, capacity, count);
+            for (int node = capacity - 1; node > 0; node--) {
+                maxSizes[node] = Math.max(maxSizes[2 * node], maxSizes[2 * node + 1]);
+            }
+            treeDirty = false;
+        }
+
+        // First position >= from whose size is >= minSize, or count if there is none
+        int findFirst(int from, long minSize) {
+            if (from >= count) {
+                return count;
+            }
+            if (treeDirty) {
+                rebuildTree();
+            }
+            int position = findFirst(1, 0, timestamps.length, from, minSize);
+            return position < 0 ? count : position;
+        }
+
+        private int findFirst(int node, int low, int high, int from, long minSize) {
+            if (high <= from || maxSizes[node] < minSize) {
+                return -1;
+            }
+            if (high - low == 1) {
+                return low;
+            }
+            int mid = (low + high) >>> 1;
+            int position = findFirst(2 * node, low, mid, from, minSize);
+            return position >= 0 ? position : findFirst(2 * node + 1, mid, high, from, minSize);
+        }
+
+        // First position whose (timestamp, height) is > the given one, or >= it if inclusive is set
+        int lowerBound(long timestamp, int height, boolean inclusive) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int compare = timestamps[mid] != timestamp ? Long.compare(timestamps[mid], timestamp) : Integer.compare(heights[mid], height);
+                if (compare < 0 || (compare == 0 && !inclusive)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    // Open the index file for the given chain, loading the entries up to the newest tip record the chain agrees with.
+    // Anything after that tip was indexed from another chain, or from blocks the chain file lost in a crash, so it is
+    // cut from the file and the caller re-indexes the chain from getNextHeight().
+    public MediaIndex(Path indexPath, List<Block> chain) {
+        List<String> lines = new ArrayList<>();
+        List<Long> lineEnds = new ArrayList<>();
+        long fileLength = 0;
+        if (Files.exists(indexPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    fileLength += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    lines.add(line);
+                    lineEnds.add(fileLength);
+                }
+                fileLength = Files.size(indexPath);
+            } catch (IOException e) {
+                System.err.println("Failed to read media index, re-indexing after " + lines.size() + " lines: " + e.getMessage());
+            }
+        }
+
+        int kept = 0;
+        long keptLength = 0;
+        for (int i = lines.size() - 1; i >= 0 && kept == 0; i--) {
+            String[] parts = lines.get(i).split(";");
+            if (parts.length != 3 || !TIP.equals(parts[0])) {
+                continue;
+            }
+            try {
+                int height = Integer.parseInt(parts[1]);
+                if (height < chain.size() && chain.get(height).hash.equals(parts[2])) {
+                    kept = i + 1;
+                    keptLength = lineEnds.get(i);
+                    nextHeight = height + 1;
+                    tipHash = parts[2];
+                }
+            } catch (NumberFormatException e) {
+                // A torn tip record, keep looking for an older one
+            }
+        }
+        for (int i = 0; i < kept; i++) {
+            String[] parts = lines.get(i).split(";");
+            if (parts.length != 4) {
+                continue; // A tip record
+            }
+            try {
+                insert(Integer.parseInt(parts[0]), parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+            } catch (NumberFormatException e) {
+                System.err.println("Skipping malformed media index entry: " + lines.get(i));
+            }
+        }
+
+        if (keptLength < fileLength) {
+            System.out.println("Media index does not match the chain after height " + (nextHeight - 1) + ", re-indexing from there.");
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                channel.truncate(keptLength);
+            } catch (IOException e) {
+                System.err.println("Failed to truncate media index: " + e.getMessage());
+            }
+        }
+        try {
+            writer = Files.newBufferedWriter(indexPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Media index will not be persisted: " + e.getMessage());
+        }
+    }
+
+    // Index the block at the given height if it carries media and has not been indexed yet
+    public synchronized void add(int height, Block block) {
+        if (index(height, block)) {
+            flush();
+        }
+    }
+
+    // Index consecutive blocks starting at firstHeight, flushing the index file once
+    public synchronized void addAll(int firstHeight, List<Block> blocks) {
+        boolean written = false;
+        for (int i = 0; i < blocks.size(); i++) {
+            written |= index(firstHeight + i, blocks.get(i));
+        }
+        if (written) {
+            flush();
+        }
+    }
+
+    private boolean index(int height, Block block) {
+        if (height < nextHeight) {
+            return false;
+        }
+        nextHeight = height + 1;
+        tipHash = block.hash;
+        if (block.mediaType == null || block.mediaType.isEmpty()) {
+            return false;
+        }
+        insert(height, block.mediaType, block.timestamp, block.mediaSize);
+        if (writer != null) {
+            try {
+                writer.write(height + ";" + block.mediaType + ";" + block.timestamp + ";" + block.mediaSize);
+                writer.newLine();
+            } catch (IOException e) {
+                System.err.println("Failed to persist media index entry: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    // Close the entries written so far with a tip record and hand them to the file
+    private void flush() {
+        if (writer != null) {
+            try {
+                writer.write(TIP + ";" + (nextHeight - 1) + ";" + tipHash);
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to persist media index entries: " + e.getMessage());
+            }
+        }
+    }
+
+    private void insert(int height, String mediaType, long timestamp, long mediaSize) {
+        types.computeIfAbsent(mediaType, type -> new TypeIndex()).insert(height, timestamp, mediaSize);
+        nextHeight = Math.max(nextHeight, height + 1);
+    }
+
+    // Blocks of the given type with fromTime <= timestamp < toTime and at least minSize bytes, in (timestamp, height) order.
+    // Pages continue after the last entry of the previous page: pass its timestamp and height, or afterHeight -1 for the first page.
+    public synchronized List<Entry> query(String mediaType, long fromTime, long toTime, long minSize,
+                                          long afterTimestamp, int afterHeight, int limit) {
+        List<Entry> page = new ArrayList<>();
+        TypeIndex index = types.get(mediaType);
+        if (index == null) {
+            return page;
+        }
+        int start = index.lowerBound(fromTime, Integer.MIN_VALUE, true);
+        if (afterHeight >= 0) {
+            start = Math.max(start, index.lowerBound(afterTimestamp, afterHeight, false));
+        }
+        // Without a size filter every position matches, so only the size filter needs the tree
+        for (int i = minSize > 0 ? index.findFirst(start, minSize) : start;
+             i < index.count && index.timestamps[i] < toTime && page.size() < limit;
+             i = minSize > 0 ? index.findFirst(i + 1, minSize) : i + 1) {
+            page.add(new Entry(index.heights[i], mediaType, index.timestamps[i], index.sizes[i]));
+        }
+        return page;
+    }
+
+    public synchronized int getNextHeight() {
+        return nextHeight;
+    }
+
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close media index: " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+}
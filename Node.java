@@ -3,11 +3,16 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.net.DatagramPacket;
 import java.net.MulticastSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URLDecoder;
 import java.io.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -18,6 +23,10 @@ public class Node implements NetworkDiscovery {
     private List<Node> peers;
     private List<Block> blockchain;
     private List<File> mediaFiles;
+    private BlockchainManager blockchainManager; // Persistent chain served to peers, if attached
+    private ExecutorService connectionExecutor;  // Handles accepted connections; a new thread per connection if null
+    private volatile ServerSocket serverSocket;
+    private volatile boolean shuttingDown = false;
 
     // Constructor that initializes the Node with a dynamically detected IP address and a random port
     public Node(String ipAddress, int port) {
@@ -120,19 +129,45 @@ public class Node implements NetworkDiscovery {
         }
     }
 
+    // Bind the server socket to the node's address up front so a port conflict is reported before the node starts serving
+    public void bind() throws IOException {
+        if (serverSocket == null) {
+            serverSocket = new ServerSocket(port, 50, InetAddress.getByName(ipAddress));
+        }
+    }
+
     public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        try {
+            bind();
+        } catch (IOException e) {
+            System.err.println("Error starting server: " + e.getMessage());
+            return;
+        }
+        try (ServerSocket serverSocket = this.serverSocket) {
             System.out.println("Server started on " + ipAddress + ":" + port);
             while (true) {
                 // Accept incoming connections
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("New connection accepted from " + clientSocket.getInetAddress().getHostAddress());
 
-                // Create a new thread to manage communication with the new peer
-                new Thread(new PeerHandler(clientSocket, this)).start();
+                if (connectionExecutor == null) {
+                    // Create a new thread to manage communication with the new peer
+                    new Thread(new PeerHandler(clientSocket, this)).start();
+                    continue;
+                }
+                try {
+                    connectionExecutor.execute(new PeerHandler(clientSocket, this));
+                } catch (RejectedExecutionException e) {
+                    System.err.println("Too many connections, dropping " + clientSocket.getInetAddress().getHostAddress());
+                    clientSocket.close();
+                }
             }
         } catch (IOException e) {
-            System.err.println("Error starting server: " + e.getMessage());
+            if (shuttingDown) {
+                System.out.println("Server stopped.");
+            } else {
+                System.err.println("Error starting server: " + e.getMessage());
+            }
         }
     }
 
@@ -156,7 +191,7 @@ public class Node implements NetworkDiscovery {
     }
     
 
-    private boolean connectToPeer(String ip, int port) {
+    public boolean connectToPeer(String ip, int port) {
         try {
             Node newPeer = new Node(ip, port); // Create a new Node instance for the peer
             newPeer.setIpAddress(ip);
@@ -185,14 +220,18 @@ public class Node implements NetworkDiscovery {
     }
 
     public List<Block> getBlockchain() {
-        return blockchain;
+        return blockchainManager != null ? blockchainManager.getBlockchain() : blockchain;
     }
 
     public void uploadMedia(File mediaFile) {
         mediaFiles.add(mediaFile);
         System.out.println("Media file uploaded: " + mediaFile.getName());
 
-        // Optionally, mine a block for the uploaded media
+        // Optionally, mine a block for the uploaded media; uploads are the only blocks written to the persistent chain
+        if (blockchainManager != null) {
+            blockchainManager.addMediaBlock("Uploaded media: " + mediaFile.getName(), mediaFile.getAbsolutePath(), "media", mediaFile.length());
+            return;
+        }
         startMining("Uploaded media: " + mediaFile.getName(), mediaFile.getAbsolutePath(), "media", mediaFile.length());
     }
 
@@ -200,8 +239,26 @@ public class Node implements NetworkDiscovery {
         return mediaFiles;
     }
 
+    // Stop accepting connections; connections already accepted are left to finish
     public void shutdown() {
         System.out.println("Shutting down node...");
+        shuttingDown = true;
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing server socket: " + e.getMessage());
+            }
+        }
+    }
+
+    public void setConnectionExecutor(ExecutorService connectionExecutor) {
+        this.connectionExecutor = connectionExecutor;
+    }
+
+    public void setBlockchainManager(BlockchainManager blockchainManager) {
+        this.blockchainManager = blockchainManager;
     }
 
     public String getIpAddress() {
@@ -246,10 +303,42 @@ public class Node implements NetworkDiscovery {
                 for (Node peer : peers) {
                     response.append(peer.getIpAddress()).append(":").append(peer.getPort()).append("\n");
                 }
-                List<Block> getBl=getBlockchain();
-                response.append("Blockchain Data"+getBl);
+                // Only the height and tip: the whole chain can be far too large to print on every request
+                List<Block> chain = getBlockchain();
+                int height = chain.size() - 1;
+                response.append("Blockchain Height: ").append(height).append("\n");
+                response.append("Tip Hash: ").append(height >= 0 ? chain.get(height).hash : "none").append("\n");
                 out.print(response.toString());
                 out.flush(); // Ensure data is sent immediately
+            } else if (request.toString().startsWith("GET /snapshot")) {
+                // Serve a checkpoint of the persistent chain if there is one, otherwise of the in-memory chain
+                Checkpoint checkpoint = blockchainManager != null
+                        ? blockchainManager.getCheckpoint()
+                        : Checkpoint.fromChain(blockchain, 4);
+                out.print("HTTP/1.1 200 OK\r\n");
+                out.print("Content-Type: text/plain\r\n");
+                out.print("X-Checkpoint-Digest: " + checkpoint.getDigest() + "\r\n");
+                out.print("\r\n");
+                out.print(checkpoint.toString());
+                out.flush();
+            } else if (request.toString().startsWith("GET /blocks")) {
+                // Stream every block in the chain file format so a peer can bulk import it
+                out.print("HTTP/1.1 200 OK\r\n");
+                out.print("Content-Type: text/plain\r\n");
+                out.print("\r\n");
+                if (blockchainManager != null) {
+                    int size = blockchainManager.getBlockchain().size();
+                    for (int i = 0; i < size; i++) {
+                        out.print(blockchainManager.getFullBlock(i) + "\n");
+                    }
+                } else {
+                    for (Block block : blockchain) {
+                        out.print(block + "\n");
+                    }
+                }
+                out.flush();
+            } else if (request.toString().startsWith("GET /media")) {
+                handleMediaQuery(request.toString(), out);
             } else {
                 out.print("HTTP/1.1 404 Not Found\r\n");
                 out.print("Content-Type: text/plain\r\n");
@@ -265,6 +354,78 @@ public class Node implements NetworkDiscovery {
     }
     
 
+    // Serve a page of the media index, e.g. GET /media?type=video&from=t1&to=t2&minSize=x&limit=100;
+    // the next page is requested with the cursor=timestamp:height returned in X-Next-Cursor
+    private void handleMediaQuery(String request, PrintWriter out) {
+        MediaIndex mediaIndex = blockchainManager != null ? blockchainManager.getMediaIndex() : null;
+        Map<String, String> params = parseQuery(request);
+        if (mediaIndex == null || !params.containsKey("type")) {
+            out.print(mediaIndex == null ? "HTTP/1.1 503 Service Unavailable\r\n" : "HTTP/1.1 400 Bad Request\r\n");
+            out.print("Content-Type: text/plain\r\n");
+            out.print("\r\n");
+            out.print(mediaIndex == null ? "Media index not available\n" : "Missing type parameter\n");
+            out.flush();
+            return;
+        }
+        try {
+            long from = Long.parseLong(params.getOrDefault("from", "0"));
+            long to = Long.parseLong(params.getOrDefault("to", Long.toString(Long.MAX_VALUE)));
+            long minSize = Long.parseLong(params.getOrDefault("minSize", "0"));
+            int limit = Math.min(1000, Math.max(1, Integer.parseInt(params.getOrDefault("limit", "100"))));
+            long afterTimestamp = 0;
+            int afterHeight = -1;
+            if (params.containsKey("cursor")) {
+                String[] cursor = params.get("cursor").split(":");
+                if (cursor.length != 2) {
+                    throw new NumberFormatException("cursor must be timestamp:height");
+                }
+                afterTimestamp = Long.parseLong(cursor[0]);
+                afterHeight = Math.max(0, Integer.parseInt(cursor[1]));
+            }
+
+            List<MediaIndex.Entry> page = mediaIndex.query(params.get("type"), from, to, minSize, afterTimestamp, afterHeight, limit);
+            StringBuilder response = new StringBuilder();
+            response.append("HTTP/1.1 200 OK\r\n");
+            response.append("Content-Type: text/plain\r\n");
+            if (page.size() == limit) {
+                MediaIndex.Entry last = page.get(page.size() - 1);
+                response.append("X-Next-Cursor: ").append(last.timestamp).append(":").append(last.height).append("\r\n");
+            }
+            response.append("\r\n");
+            for (MediaIndex.Entry entry : page) {
+                response.append(entry).append("\n");
+            }
+            out.print(response.toString());
+        } catch (NumberFormatException e) {
+            out.print("HTTP/1.1 400 Bad Request\r\n");
+            out.print("Content-Type: text/plain\r\n");
+            out.print("\r\n");
+            out.print("Invalid number: " + e.getMessage() + "\n");
+        }
+        out.flush();
+    }
+
+    // Parse the query string of the request line into a map
+    private static Map<String, String> parseQuery(String request) {
+        Map<String, String> params = new HashMap<>();
+        String requestLine = request.split("\n", 2)[0];
+        String[] target = requestLine.split(" ");
+        if (target.length < 2 || !target[1].contains("?")) {
+            return params;
+        }
+        for (String pair : target[1].substring(target[1].indexOf('?') + 1).split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            if (keyValue.length == 2) {
+                try {
+                    params.put(URLDecoder.decode(keyValue[0], "UTF-8"), URLDecoder.decode(keyValue[1], "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return params;
+    }
+
     // Method to zip media files
     public void zipMediaFiles(String zipFilePath) {
         try (FileOutputStream fos = new FileOutputStream(zipFilePath);
@@ -0,0 +1,262 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless entry point: reads a properties file and command-line flags, starts the node on fixed, named threads
+// and shuts it down cleanly on SIGTERM/SIGINT.
+// Usage: java NodeDaemon [--config node.properties] [--port 8080] [--data-dir data] [--miner-threads 4] [--peers host:port,...]
+//                         [--bootstrap-peer host:port [--checkpoint-digest sha256]] [--retention-blocks n] [--retention-bytes n]
+//                         [--import-file chain.txt]
+public class NodeDaemon {
+    private static final List<String> KEYS = Arrays.asList(
+            "host", "port", "data.dir", "miner.threads", "connection.threads", "peers", "discovery", "checkpoint.digest",
+            "bootstrap.peer", "retention.blocks", "retention.bytes",
+            "import.file");
+
+    // Settings of the daemon; command-line flags override the config file, which overrides the defaults
+    private static class Config {
+        String host = "127.0.0.1";
+        int port = 8080;
+        String dataDir = "data";
+        int minerThreads = Runtime.getRuntime().availableProcessors();
+        int connectionThreads = 8;
+        List<String> peers = new ArrayList<>();
+        boolean discovery = true;
+        String checkpointDigest = null; // Pins the snapshot fetched from the bootstrap peer
+        String bootstrapPeer = null;  // Peer to download the chain from when starting with an empty chain
+        int retentionBlocks = 0;      // Keep at most this many full blocks, older ones are pruned to cold segments; 0 keeps all
+        long retentionBytes = 0;      // Keep at most this many bytes of full blocks; 0 keeps all
+        String importFile = null;     // Chain file to import on startup, e.g. to migrate an archive
+
+        static Config parse(String[] args) throws IOException {
+            Properties flags = new Properties();
+            String configPath = null;
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Expected --name value but got: " + args[i]);
+                }
+                String key = args[i].substring(2).replace('-', '.');
+                if (key.equals("config")) {
+                    configPath = args[++i];
+                } else {
+                    flags.setProperty(key, args[++i]);
+                }
+            }
+
+            Properties properties = new Properties();
+            if (configPath != null) {
+                try (Reader reader = Files.newBufferedReader(Paths.get(configPath))) {
+                    properties.load(reader);
+                }
+            }
+            properties.putAll(flags);
+            for (String key : properties.stringPropertyNames()) {
+                if (!KEYS.contains(key)) {
+                    throw new IllegalArgumentException("Unknown setting: " + key);
+                }
+            }
+
+            Config config = new Config();
+            config.host = properties.getProperty("host", config.host);
+            config.port = Integer.parseInt(properties.getProperty("port", Integer.toString(config.port)));
+            config.dataDir = properties.getProperty("data.dir", config.dataDir);
+            config.minerThreads = Math.max(1, Integer.parseInt(properties.getProperty("miner.threads", Integer.toString(config.minerThreads))));
+            config.connectionThreads = Math.max(1, Integer.parseInt(properties.getProperty("connection.threads", Integer.toString(config.connectionThreads))));
+            config.discovery = Boolean.parseBoolean(properties.getProperty("discovery", Boolean.toString(config.discovery)));
+            config.retentionBlocks = Math.max(0, Integer.parseInt(properties.getProperty("retention.blocks", "0")));
+            config.retentionBytes = Math.max(0, Long.parseLong(properties.getProperty("retention.bytes", "0")));
+            config.importFile = properties.getProperty("import.file");
+            config.checkpointDigest = properties.getProperty("checkpoint.digest");
+            if (properties.getProperty("bootstrap.peer") != null) {
+                config.bootstrapPeer = validatePeer(properties.getProperty("bootstrap.peer").trim());
+            }
+            if (config.checkpointDigest != null && config.bootstrapPeer == null) {
+                throw new IllegalArgumentException("checkpoint.digest pins the bootstrap peer's snapshot and needs bootstrap.peer");
+            }
+            for (String peer : properties.getProperty("peers", "").split(",")) {
+                if (!peer.trim().isEmpty()) {
+                    config.peers.add(validatePeer(peer.trim()));
+                }
+            }
+            return config;
+        }
+
+        // A peer must be host:port with a valid port number
+        private static String validatePeer(String peer) {
+            String[] parts = peer.split(":");
+            if (parts.length != 2 || parts[0].isEmpty()) {
+                throw new IllegalArgumentException("Invalid peer, expected host:port: " + peer);
+            }
+            try {
+                int port = Integer.parseInt(parts[1]);
+                if (port < 1 || port > 65535) {
+                    throw new IllegalArgumentException("Invalid peer port: " + peer);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid peer port: " + peer);
+            }
+            return peer;
+        }
+    }
+
+    public static void main(String[] args) {
+        long startTime = System.nanoTime();
+        StringBuilder phases = new StringBuilder();
+        long phaseStart = startTime;
+
+        Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid configuration: " + e.getMessage());
+            System.err.println("Usage: java NodeDaemon [--config file] [--host ip] [--port n] [--data-dir dir] [--miner-threads n]"
+                    + " [--connection-threads n] [--peers host:port,...] [--discovery true|false]"
+                    + " [--bootstrap-peer host:port [--checkpoint-digest sha256]] [--retention-blocks n] [--retention-bytes n]"
+                    + " [--import-file chain.txt]");
+            System.exit(2);
+            return;
+        }
+        phaseStart = recordPhase(phases, "config", phaseStart);
+
+        new File(config.dataDir).mkdirs();
+        BlockchainManager blockchainManager;
+        try {
+            blockchainManager = new BlockchainManager(Paths.get(config.dataDir, "blockchain.txt").toString());
+        } catch (RuntimeException e) {
+            System.err.println("Could not load the blockchain: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (config.retentionBlocks > 0 || config.retentionBytes > 0) {
+            // Set before bootstrapping so an import prunes as it goes instead of holding every body in memory
+            blockchainManager.setRetention(config.retentionBlocks, config.retentionBytes);
+        }
+        phaseStart = recordPhase(phases, "load chain", phaseStart);
+
+        if (config.bootstrapPeer != null && blockchainManager.getBlockchain().size() == 1) {
+            if (!bootstrap(blockchainManager, config.bootstrapPeer, config.checkpointDigest, config.minerThreads)) {
+                blockchainManager.close();
+                System.exit(1);
+                return;
+            }
+            phaseStart = recordPhase(phases, "bootstrap", phaseStart);
+        }
+        if (config.importFile != null) {
+            // Appends the blocks that extend the chain; blocks it already holds are skipped, so a rerun is harmless
+            new BlockImporter(blockchainManager, config.minerThreads).importFromFile(Paths.get(config.importFile));
+            phaseStart = recordPhase(phases, "import", phaseStart);
+        }
+
+        // Fixed thread layout: one acceptor, a bounded pool for connections, the miners and one discovery thread
+        ExecutorService server = Executors.newSingleThreadExecutor(namedThreads("node-server"));
+        ExecutorService connections = new ThreadPoolExecutor(config.connectionThreads, config.connectionThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.connectionThreads * 8), namedThreads("node-connection"));
+        ExecutorService miners = Executors.newFixedThreadPool(config.minerThreads, namedThreads("node-miner"));
+        ExecutorService discovery = Executors.newSingleThreadExecutor(namedThreads("node-discovery"));
+        blockchainManager.setMiners(miners, config.minerThreads);
+
+        Node node = new Node(config.host, config.port);
+        node.setBlockchainManager(blockchainManager);
+        node.setConnectionExecutor(connections);
+        // Registered before anything can fail, so every exit path drains and syncs the chain
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> shutdown(node, blockchainManager, server, connections, miners, discovery), "node-shutdown"));
+
+        try {
+            try {
+                node.bind();
+            } catch (IOException e) {
+                System.err.println("Could not bind port " + config.port + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            server.execute(node::startServer);
+            phaseStart = recordPhase(phases, "bind", phaseStart);
+
+            for (String peer : config.peers) {
+                String[] parts = peer.split(":");
+                node.connectToPeer(parts[0], Integer.parseInt(parts[1]));
+            }
+            if (config.discovery) {
+                discovery.execute(node::discoverAndConnect);
+            }
+            recordPhase(phases, "peers", phaseStart);
+        } catch (RuntimeException e) {
+            System.err.println("Error starting node: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        System.out.println("Node " + config.host + ":" + config.port + " started in "
+                + (System.nanoTime() - startTime) / 1_000_000 + " ms (" + phases + ")");
+    }
+
+    // Seed a fresh node from a peer: fetch its checkpoint, import its blocks and check they are the checkpointed chain
+    private static boolean bootstrap(BlockchainManager blockchainManager, String peer, String checkpointDigest, int verifierThreads) {
+        String[] parts = peer.split(":");
+        String ip = parts[0];
+        int port = Integer.parseInt(parts[1]);
+        if (checkpointDigest == null) {
+            System.out.println("No checkpoint digest configured, trusting the checkpoint served by " + peer + ".");
+        }
+        Checkpoint checkpoint = Checkpoint.fetchFromPeer(ip, port, checkpointDigest);
+        if (checkpoint == null) {
+            System.err.println("Could not get a checkpoint from " + peer + ", refusing to start.");
+            return false;
+        }
+        new BlockImporter(blockchainManager, verifierThreads).importFromPeer(ip, port);
+        if (!checkpoint.matches(blockchainManager.getBlockchain())) {
+            System.err.println("Blocks imported from " + peer + " do not match its checkpoint at height "
+                    + checkpoint.getHeight() + ", refusing to start.");
+            return false;
+        }
+        System.out.println("Bootstrapped from " + peer + " up to checkpoint height " + checkpoint.getHeight() + ".");
+        return true;
+    }
+
+    // Stop accepting work, let accepted connections and in-flight appends finish, then fsync the chain
+    private static void shutdown(Node node, BlockchainManager blockchainManager, ExecutorService server,
+                                 ExecutorService connections, ExecutorService miners, ExecutorService discovery) {
+        long shutdownStart = System.nanoTime();
+        node.shutdown();
+        server.shutdown();
+        discovery.shutdownNow();
+        connections.shutdown();
+        awaitTermination(connections, "connections");
+        miners.shutdown();
+        awaitTermination(miners, "miners");
+        blockchainManager.close();
+        System.out.println("Node stopped in " + (System.nanoTime() - shutdownStart) / 1_000_000 + " ms.");
+    }
+
+    private static void awaitTermination(ExecutorService executor, String name) {
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.err.println("Timed out waiting for " + name + " to finish.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long recordPhase(StringBuilder phases, String name, long phaseStart) {
+        long now = System.nanoTime();
+        if (phases.length() > 0) {
+            phases.append(", ");
+        }
+        phases.append(name).append(" ").append((now - phaseStart) / 1_000_000).append(" ms");
+        return now;
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, prefix + "-" + count.incrementAndGet());
+    }
+}
@@ -22,7 +22,7 @@ public class PeerHandler implements Runnable {
 
             // Handle HTTP request (assuming you are doing this in the same method)
             node.handleHttpRequest(clientSocket);
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             System.err.println("Error handling peer: " + e.getMessage());
         }
     }